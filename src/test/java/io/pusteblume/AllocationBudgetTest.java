@@ -0,0 +1,164 @@
+package io.pusteblume;
+
+import io.pusteblume.FunctionalApiTest.Trampoline;
+import io.pusteblume.PrimitiveCurryingTest.IntCurry2;
+import io.pusteblume.StreamsTest.Book;
+import io.pusteblume.StreamsTest.BookSpliterator;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.TestFactory;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class AllocationBudgetTest {
+
+    private static final Path REPORT = Path.of(System.getProperty("allocation.report", "target/allocation-report.txt"));
+    private static final List<Measurement> MEASUREMENTS = Collections.synchronizedList(new ArrayList<>());
+
+    @TestFactory
+    public Stream<DynamicTest> allocationBudgets() throws IOException {
+        List<String> lines = Files.readAllLines(Path.of(this.getClass().getResource("/Books.txt").getPath()));
+        List<Book> books = parse(lines);
+        IntCurry2 add = IntCurry2.curry(Integer::sum).cached();
+
+        //Budgets sit about 1.5x over the worst reading seen, running alone or after the rest of the suite.
+        //What escape analysis removes depends on the profiles earlier tests left behind, so book parse
+        //reads 904-968 alone but 1368 in the full suite, and the optional chain has read 0-48.
+        return Stream.of(
+                //one op parses all six records of Books.txt: Book, boxed score and the result list
+                new Scenario("book parse", 50_000, 2_048, i -> parse(lines).size()),
+                new Scenario("groupingBy", 50_000, 1_600, i -> books.stream()
+                        .collect(Collectors.groupingBy(b -> b.getAuthor().substring(0, 1), Collectors.counting()))
+                        .size()),
+                new Scenario("optional chain", 200_000, 64, i -> Optional.of(books.get(i % books.size()))
+                        .map(Book::getName)
+                        .filter(n -> n.contains("e"))
+                        .map(String::length)
+                        .orElse(0)),
+                //one run bounces through 1000 steps and every step counts as an op
+                new Scenario("trampoline step", 1_000, 1_000, 64, i -> countDown(1_000, i).result()),
+                new Scenario("curried apply", 1_000_000, 1, i -> add.partial(i & 0x7F).applyAsInt(i))
+        ).map(scenario -> DynamicTest.dynamicTest(scenario.name, scenario::check));
+    }
+
+    @AfterAll
+    public static void writeReport() throws IOException {
+        List<String> report = new ArrayList<>();
+        report.add(String.format("%-20s %10s %14s %10s %s", "scenario", "ops", "bytes/op", "budget", "status"));
+        synchronized (MEASUREMENTS) {
+            for (Measurement m : MEASUREMENTS) {
+                report.add(String.format(Locale.ROOT, "%-20s %10d %14.1f %10d %s",
+                        m.scenario, m.ops, m.bytesPerOp, m.budget, m.withinBudget() ? "ok" : "OVER BUDGET"));
+            }
+        }
+        Path directory = REPORT.toAbsolutePath().getParent();
+        if (directory != null) {
+            Files.createDirectories(directory);
+        }
+        Files.write(REPORT, report);
+        report.forEach(System.out::println);
+    }
+
+    static List<Book> parse(List<String> lines) {
+        return StreamSupport.stream(new BookSpliterator(lines.spliterator()), false).collect(Collectors.toList());
+    }
+
+    static Trampoline<Integer> countDown(int n, int acc) {
+        return n == 0 ? Trampoline.done(acc) : Trampoline.more(() -> countDown(n - 1, acc + 1));
+    }
+
+    //One block of code run runs times after WARM_UP_ROUNDS times as many warm-up runs, failing when it
+    //allocates more than budget bytes per operation on average. A run may perform several operations,
+    //such as the steps of one trampoline, so its fixed setup is spread over them.
+    static class Scenario {
+        private static final int WARM_UP_ROUNDS = 10;
+        private final String name;
+        private final int runs;
+        private final int opsPerRun;
+        private final long budget;
+        private final IntUnaryOperator run;
+
+        Scenario(String name, int runs, long budget, IntUnaryOperator run) {
+            this(name, runs, 1, budget, run);
+        }
+
+        Scenario(String name, int runs, int opsPerRun, long budget, IntUnaryOperator run) {
+            this.name = name;
+            this.runs = runs;
+            this.opsPerRun = opsPerRun;
+            this.budget = budget;
+            this.run = run;
+        }
+
+        void check() {
+            for (int round = 0; round < WARM_UP_ROUNDS; round++) {
+                AllocationMeter.run(runs, run);
+            }
+            long allocated = AllocationMeter.allocatedBytes(() -> AllocationMeter.run(runs, run));
+            long ops = (long) runs * opsPerRun;
+            Measurement measurement = new Measurement(name, ops, (double) allocated / ops, budget);
+            MEASUREMENTS.add(measurement);
+            Assertions.assertTrue(measurement.withinBudget(), () -> String.format(Locale.ROOT,
+                    "%s allocated %.1f bytes/op, budget is %d", name, measurement.bytesPerOp, budget));
+        }
+    }
+
+    static class Measurement {
+        private final String scenario;
+        private final long ops;
+        private final double bytesPerOp;
+        private final long budget;
+
+        Measurement(String scenario, long ops, double bytesPerOp, long budget) {
+            this.scenario = scenario;
+            this.ops = ops;
+            this.bytesPerOp = bytesPerOp;
+            this.budget = budget;
+        }
+
+        boolean withinBudget() {
+            return bytesPerOp <= budget;
+        }
+    }
+
+    static class AllocationMeter {
+        private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+        static volatile int sink;
+
+        //Bytes allocated by the current thread while running block, other threads are not counted.
+        //Aborts the calling test when the JVM cannot count them and switches counting on when it is off.
+        static long allocatedBytes(Runnable block) {
+            Assumptions.assumeTrue(THREADS instanceof com.sun.management.ThreadMXBean
+                    && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported(),
+                    "this JVM cannot count allocated bytes per thread");
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (!threads.isThreadAllocatedMemoryEnabled()) {
+                threads.setThreadAllocatedMemoryEnabled(true);
+            }
+            long threadId = Thread.currentThread().getId();
+            long before = threads.getThreadAllocatedBytes(threadId);
+            block.run();
+            return threads.getThreadAllocatedBytes(threadId) - before;
+        }
+
+        //Keeps the results alive so the JIT cannot drop the measured work
+        static void run(int ops, IntUnaryOperator op) {
+            int sum = 0;
+            for (int i = 0; i < ops; i++) {
+                sum += op.applyAsInt(i);
+            }
+            sink = sum;
+        }
+    }
+}
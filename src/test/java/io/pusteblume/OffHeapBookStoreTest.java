@@ -0,0 +1,521 @@
+package io.pusteblume;
+
+import io.pusteblume.StreamsTest.Book;
+import io.pusteblume.StreamsTest.BookSpliterator;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class OffHeapBookStoreTest {
+
+    @Test
+    public void storeReadsBackParsedBooks() throws IOException {
+        List<Book> books = parseBooks();
+        OffHeapBookStore store = new OffHeapBookStore(2, 64);
+        books.forEach(store::append);
+
+        Assertions.assertEquals(books.size(), store.size());
+        List<String> viewed = StreamSupport.stream(store.spliterator(), false)
+                .map(v -> v.toBook().toString())
+                .collect(Collectors.toList());
+        Assertions.assertEquals(books.stream().map(Book::toString).collect(Collectors.toList()), viewed);
+    }
+
+    @Test
+    public void flyweightIsReusedAcrossRecords() throws IOException {
+        OffHeapBookStore store = new OffHeapBookStore(4, 128);
+        parseBooks().forEach(store::append);
+
+        Set<OffHeapBookStore.BookView> views = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<String> authors = new ArrayList<>();
+        store.spliterator().forEachRemaining(v -> {
+            views.add(v);
+            authors.add(v.author());
+        });
+
+        Assertions.assertEquals(1, views.size());
+        Assertions.assertEquals(List.of("Jonathan Swift", "Mary Shelley", "Wilkie Collins",
+                "Lewis Carroll", "Jerome K. Jerome", "Aldous Huxley"), authors);
+    }
+
+    @Test
+    public void parallelAggregationOverSplitStore() {
+        int count = 200_000;
+        OffHeapBookStore store = new OffHeapBookStore(1 << 10, 1 << 12);
+        for (int i = 0; i < count; i++) {
+            store.append("author " + (i % 100), "genre " + (i % 7), "book " + i, i % 5);
+        }
+
+        Spliterator<OffHeapBookStore.BookView> spliterator = store.spliterator();
+        Spliterator<OffHeapBookStore.BookView> prefix = spliterator.trySplit();
+        Assertions.assertEquals(count / 2, prefix.getExactSizeIfKnown());
+        Assertions.assertEquals(count / 2, spliterator.getExactSizeIfKnown());
+
+        double total = StreamSupport.stream(store.spliterator(), true)
+                .mapToDouble(OffHeapBookStore.BookView::score)
+                .sum();
+        Map<String, Long> perGenre = StreamSupport.stream(store.spliterator(), true)
+                .collect(() -> new FieldCounter(OffHeapBookStore.Field.GENRE), FieldCounter::accept, FieldCounter::combine)
+                .toMap();
+
+        Assertions.assertEquals(2.0 * count, total);
+        Assertions.assertEquals(7, perGenre.size());
+        Assertions.assertEquals(Long.valueOf(count / 7 + 1), perGenre.get("genre 0"));
+        Assertions.assertEquals(count, perGenre.values().stream().mapToLong(Long::longValue).sum());
+        Assertions.assertEquals("book 123456", store.view(123456).name());
+    }
+
+    @Test
+    public void fieldsCompareInPlace() {
+        OffHeapBookStore store = new OffHeapBookStore(2, 64);
+        store.append("Émile Zola", "Naturalism", "Germinal", 4.0);
+        store.append("Emily Brontë", "Gothic", "Wuthering Heights", 4.1);
+        OffHeapBookStore.BookView zola = store.view(0);
+        OffHeapBookStore.BookView bronte = store.view(1);
+
+        Assertions.assertTrue(zola.fieldEquals(OffHeapBookStore.Field.GENRE, "Naturalism".getBytes(StandardCharsets.UTF_8)));
+        Assertions.assertFalse(zola.fieldEquals(OffHeapBookStore.Field.NAME, "Germinal!".getBytes(StandardCharsets.UTF_8)));
+        Assertions.assertEquals(Integer.signum("Émile Zola".compareTo("Emily Brontë")),
+                Integer.signum(zola.compareField(OffHeapBookStore.Field.AUTHOR, bronte)));
+        Assertions.assertEquals(Arrays.hashCode("Emily Brontë".getBytes(StandardCharsets.UTF_8)),
+                bronte.fieldHash(OffHeapBookStore.Field.AUTHOR));
+        Assertions.assertEquals("Wuthering Heights", bronte.name());
+    }
+
+    @Test
+    public void bookLargerThanStringChunkIsRejected() {
+        OffHeapBookStore store = new OffHeapBookStore(4, 16);
+        store.append("a", "b", "c", 1.0);
+
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> store.append("an author", "a genre", "a long name", 2.0));
+        Assertions.assertEquals(1, store.size());
+    }
+
+    @Test
+    public void heapStaysFlatAsStoreGrows() {
+        int[] sizes = {100_000, 1_000_000};
+        OffHeapBookStore[] stores = new OffHeapBookStore[sizes.length];
+        long[] retained = new long[sizes.length];
+        long heap = usedHeapAfterGc();
+        for (int s = 0; s < sizes.length; s++) {
+            stores[s] = new OffHeapBookStore();
+            for (int i = 0; i < sizes[s]; i++) {
+                Book book = generated(i);
+                stores[s].append(book.getAuthor(), book.getGenre(), book.getName(), book.getScore());
+            }
+            long used = usedHeapAfterGc();
+            retained[s] = used - heap;
+            heap = used;
+        }
+        //the same measurement over heap Books shows that it does see retained records
+        List<Book> onHeap = new ArrayList<>(sizes[0]);
+        for (int i = 0; i < sizes[0]; i++) {
+            onHeap.add(generated(i));
+        }
+        long heapBooks = usedHeapAfterGc() - heap;
+        System.out.println("heap retained by " + sizes[0] + " off-heap books " + retained[0] / 1024 + "KB, by "
+                + sizes[1] + " off-heap books " + retained[1] / 1024 + "KB, by " + onHeap.size() + " heap books "
+                + heapBooks / 1024 + "KB");
+
+        Assertions.assertTrue(heapBooks > 64L * sizes[0], "heap books retained only " + heapBooks + " bytes");
+        for (int s = 0; s < sizes.length; s++) {
+            Assertions.assertTrue(retained[s] < 1 << 20, stores[s].size() + " books retained " + retained[s] + " bytes");
+        }
+    }
+
+    @Test
+    public void inPlaceScanDoesNotAllocate() {
+        OffHeapBookStore store = new OffHeapBookStore();
+        for (int i = 0; i < 1_000_000; i++) {
+            Book book = generated(i);
+            store.append(book.getAuthor(), book.getGenre(), book.getName(), book.getScore());
+        }
+        Assumptions.assumeTrue(threadAllocatedBytes() >= 0, "this JVM cannot count allocated bytes per thread");
+
+        double[] total = new double[1];
+        FieldCounter perGenre = new FieldCounter(OffHeapBookStore.Field.GENRE);
+        long before = threadAllocatedBytes();
+        store.spliterator().forEachRemaining(view -> {
+            total[0] += view.score();
+            perGenre.accept(view);
+        });
+        long allocated = threadAllocatedBytes() - before;
+        System.out.println("scan over " + store.size() + " off-heap books allocated " + allocated + " bytes");
+
+        //what is allocated is the spliterator, its view and one key per distinct genre, not per record
+        Assertions.assertTrue(allocated * 10 < store.size(), "scan allocated " + allocated + " bytes");
+        Assertions.assertEquals(20, perGenre.toMap().size());
+    }
+
+    static Book generated(int i) {
+        return new Book("author " + i % 5_000, "genre " + i % 20, "book " + i, i % 51 / 10.0);
+    }
+
+    static long usedHeapAfterGc() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    //Bytes allocated so far by the current thread, -1 when the JVM does not count them
+    static long threadAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+        if (!hotspot.isThreadAllocatedMemorySupported() || !hotspot.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    List<Book> parseBooks() throws IOException {
+        String path = this.getClass().getResource("/Books.txt").getPath();
+        try (Stream<String> lines = Files.lines(Path.of(path))) {
+            return StreamSupport.stream(new BookSpliterator(lines.spliterator()), false)
+                    .collect(Collectors.toList());
+        }
+    }
+
+    //Keeps books outside the heap as fixed-size records in fixed-size direct buffer chunks, with the
+    //UTF-8 bytes of their strings in a second set of chunks. Chunks are only ever added, so nothing is
+    //copied as the store grows. Records are only turned back into objects on request: a BookView reads
+    //the fields of whichever record it is positioned on.
+    static class OffHeapBookStore {
+        //score, the string chunk and offset where name, author and genre are stored back to back, and their lengths
+        private static final int SCORE = 0;
+        private static final int STRING_CHUNK = 8;
+        private static final int STRING_OFFSET = 12;
+        private static final int NAME_LENGTH = 16;
+        private static final int AUTHOR_LENGTH = 20;
+        private static final int GENRE_LENGTH = 24;
+        private static final int RECORD_BYTES = 32;
+        private static final Field[] FIELDS = Field.values();
+        private final int recordsPerChunk;
+        private final int stringChunkBytes;
+        private final List<ByteBuffer> records = new ArrayList<>();
+        private final List<ByteBuffer> strings = new ArrayList<>();
+        private int stringPosition;
+        private int size;
+
+        OffHeapBookStore() {
+            this(1 << 15, 1 << 20);
+        }
+
+        OffHeapBookStore(int recordsPerChunk, int stringChunkBytes) {
+            this.recordsPerChunk = recordsPerChunk;
+            this.stringChunkBytes = stringChunkBytes;
+        }
+
+        void append(Book book) {
+            append(book.getAuthor(), book.getGenre(), book.getName(), book.getScore());
+        }
+
+        void append(String author, String genre, String name, double score) {
+            if (size == Integer.MAX_VALUE) {
+                throw new IllegalStateException("off-heap store is full");
+            }
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            byte[] authorBytes = author.getBytes(StandardCharsets.UTF_8);
+            byte[] genreBytes = genre.getBytes(StandardCharsets.UTF_8);
+            int stringBytes = nameBytes.length + authorBytes.length + genreBytes.length;
+            if (stringBytes > stringChunkBytes) {
+                throw new IllegalArgumentException("book strings take " + stringBytes
+                        + " bytes, more than a chunk of " + stringChunkBytes);
+            }
+            if (strings.isEmpty() || stringPosition + stringBytes > stringChunkBytes) {
+                strings.add(ByteBuffer.allocateDirect(stringChunkBytes));
+                stringPosition = 0;
+            }
+            ByteBuffer stringChunk = strings.get(strings.size() - 1);
+            stringChunk.position(stringPosition);
+            stringChunk.put(nameBytes).put(authorBytes).put(genreBytes);
+
+            if (size % recordsPerChunk == 0) {
+                records.add(ByteBuffer.allocateDirect(recordsPerChunk * RECORD_BYTES));
+            }
+            ByteBuffer recordChunk = records.get(size / recordsPerChunk);
+            int record = (size % recordsPerChunk) * RECORD_BYTES;
+            recordChunk.putDouble(record + SCORE, score);
+            recordChunk.putInt(record + STRING_CHUNK, strings.size() - 1);
+            recordChunk.putInt(record + STRING_OFFSET, stringPosition);
+            recordChunk.putInt(record + NAME_LENGTH, nameBytes.length);
+            recordChunk.putInt(record + AUTHOR_LENGTH, authorBytes.length);
+            recordChunk.putInt(record + GENRE_LENGTH, genreBytes.length);
+            stringPosition += stringBytes;
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        //In the order their bytes are stored
+        enum Field {
+            NAME(NAME_LENGTH), AUTHOR(AUTHOR_LENGTH), GENRE(GENRE_LENGTH);
+
+            private final int lengthSlot;
+
+            Field(int lengthSlot) {
+                this.lengthSlot = lengthSlot;
+            }
+        }
+
+        BookView view(int index) {
+            BookView view = new BookView();
+            view.moveTo(index);
+            return view;
+        }
+
+        Spliterator<BookView> spliterator() {
+            return new BookViewSpliterator(0, size);
+        }
+
+        //Not thread safe and only valid until moved, so it must not be kept beyond the callback it was handed to
+        class BookView {
+            private ByteBuffer records;
+            private int record;
+
+            BookView moveTo(int index) {
+                Objects.checkIndex(index, size);
+                this.records = OffHeapBookStore.this.records.get(index / recordsPerChunk);
+                this.record = (index % recordsPerChunk) * RECORD_BYTES;
+                return this;
+            }
+
+            double score() {
+                return records.getDouble(record + SCORE);
+            }
+
+            String name() {
+                return string(Field.NAME);
+            }
+
+            String author() {
+                return string(Field.AUTHOR);
+            }
+
+            String genre() {
+                return string(Field.GENRE);
+            }
+
+            Book toBook() {
+                return new Book(author(), genre(), name(), score());
+            }
+
+            //The accessors below work on the stored UTF-8 bytes and allocate nothing
+
+            int length(Field field) {
+                return records.getInt(record + field.lengthSlot);
+            }
+
+            boolean fieldEquals(Field field, byte[] utf8) {
+                int length = length(field);
+                if (length != utf8.length) {
+                    return false;
+                }
+                ByteBuffer chunk = stringChunk();
+                int start = start(field);
+                for (int i = 0; i < length; i++) {
+                    if (chunk.get(start + i) != utf8[i]) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            //Unsigned byte order of UTF-8 is code point order
+            int compareField(Field field, BookView other) {
+                ByteBuffer chunk = stringChunk();
+                ByteBuffer otherChunk = other.stringChunk();
+                int start = start(field);
+                int otherStart = other.start(field);
+                int length = length(field);
+                int otherLength = other.length(field);
+                for (int i = 0; i < Math.min(length, otherLength); i++) {
+                    int cmp = Byte.toUnsignedInt(chunk.get(start + i)) - Byte.toUnsignedInt(otherChunk.get(otherStart + i));
+                    if (cmp != 0) {
+                        return cmp;
+                    }
+                }
+                return Integer.compare(length, otherLength);
+            }
+
+            //Same value as Arrays.hashCode over the field's UTF-8 bytes
+            int fieldHash(Field field) {
+                ByteBuffer chunk = stringChunk();
+                int start = start(field);
+                int hash = 1;
+                for (int i = start, end = start + length(field); i < end; i++) {
+                    hash = 31 * hash + chunk.get(i);
+                }
+                return hash;
+            }
+
+            byte[] fieldBytes(Field field) {
+                ByteBuffer chunk = stringChunk();
+                int start = start(field);
+                byte[] bytes = new byte[length(field)];
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = chunk.get(start + i);
+                }
+                return bytes;
+            }
+
+            private String string(Field field) {
+                return new String(fieldBytes(field), StandardCharsets.UTF_8);
+            }
+
+            private ByteBuffer stringChunk() {
+                return strings.get(records.getInt(record + STRING_CHUNK));
+            }
+
+            private int start(Field field) {
+                int start = records.getInt(record + STRING_OFFSET);
+                for (Field before : FIELDS) {
+                    if (before == field) {
+                        return start;
+                    }
+                    start += length(before);
+                }
+                throw new IllegalArgumentException(String.valueOf(field));
+            }
+
+            @Override
+            public String toString() {
+                return toBook().toString();
+            }
+        }
+
+        //Hands the same BookView to every callback, one per spliterator
+        class BookViewSpliterator implements Spliterator<BookView> {
+            private int from;
+            private final int to;
+            private BookView view;
+
+            BookViewSpliterator(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            public boolean tryAdvance(Consumer<? super BookView> action) {
+                if (from >= to) {
+                    return false;
+                }
+                action.accept(view().moveTo(from++));
+                return true;
+            }
+
+            @Override
+            public void forEachRemaining(Consumer<? super BookView> action) {
+                BookView view = view();
+                while (from < to) {
+                    action.accept(view.moveTo(from++));
+                }
+            }
+
+            @Override
+            public Spliterator<BookView> trySplit() {
+                int mid = (from + to) >>> 1;
+                if (mid <= from) {
+                    return null;
+                }
+                Spliterator<BookView> prefix = new BookViewSpliterator(from, mid);
+                from = mid;
+                return prefix;
+            }
+
+            @Override
+            public long estimateSize() {
+                return to - from;
+            }
+
+            @Override
+            public int characteristics() {
+                return Spliterator.ORDERED | Spliterator.SIZED | Spliterator.SUBSIZED
+                        | Spliterator.NONNULL | Spliterator.IMMUTABLE;
+            }
+
+            private BookView view() {
+                if (view == null) {
+                    view = new BookView();
+                }
+                return view;
+            }
+        }
+    }
+
+    //Counts records per distinct value of a field, reading the value in place and decoding
+    //each distinct value only once. The linear lookup is meant for low-cardinality fields.
+    static class FieldCounter {
+        private final OffHeapBookStore.Field field;
+        private final List<byte[]> keys = new ArrayList<>();
+        private int[] hashes = new int[8];
+        private long[] counts = new long[8];
+
+        FieldCounter(OffHeapBookStore.Field field) {
+            this.field = field;
+        }
+
+        void accept(OffHeapBookStore.BookView view) {
+            int hash = view.fieldHash(field);
+            for (int i = 0; i < keys.size(); i++) {
+                if (hashes[i] == hash && view.fieldEquals(field, keys.get(i))) {
+                    counts[i]++;
+                    return;
+                }
+            }
+            add(view.fieldBytes(field), hash, 1);
+        }
+
+        void combine(FieldCounter other) {
+            next:
+            for (int o = 0; o < other.keys.size(); o++) {
+                for (int i = 0; i < keys.size(); i++) {
+                    if (hashes[i] == other.hashes[o] && Arrays.equals(keys.get(i), other.keys.get(o))) {
+                        counts[i] += other.counts[o];
+                        continue next;
+                    }
+                }
+                add(other.keys.get(o), other.hashes[o], other.counts[o]);
+            }
+        }
+
+        Map<String, Long> toMap() {
+            Map<String, Long> map = new HashMap<>();
+            for (int i = 0; i < keys.size(); i++) {
+                map.put(new String(keys.get(i), StandardCharsets.UTF_8), counts[i]);
+            }
+            return map;
+        }
+
+        private void add(byte[] key, int hash, long count) {
+            int index = keys.size();
+            if (index == hashes.length) {
+                hashes = Arrays.copyOf(hashes, index * 2);
+                counts = Arrays.copyOf(counts, index * 2);
+            }
+            keys.add(key);
+            hashes[index] = hash;
+            counts[index] = count;
+        }
+    }
+}
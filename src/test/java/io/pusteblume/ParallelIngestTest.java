@@ -0,0 +1,426 @@
+package io.pusteblume;
+
+import io.pusteblume.StreamsTest.Book;
+import io.pusteblume.StreamsTest.BookSpliterator;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.Consumer;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class ParallelIngestTest {
+
+    private static final int[] SHARD_COPIES = {1, 2, 30, 3, 8};
+
+    @TempDir
+    Path catalog;
+
+    @Test
+    public void mergedStreamKeepsShardAndRecordOrder() throws IOException {
+        List<String> expected = writeShards();
+
+        List<String> names = ShardedBookSource.of(catalog, "shard-*.txt")
+                .stream()
+                .map(Book::getName)
+                .collect(Collectors.toList());
+
+        Assertions.assertEquals(expected, names);
+    }
+
+    @Test
+    public void collectorsRunOnDedicatedPool() throws IOException, ExecutionException, InterruptedException {
+        writeShards();
+        ShardedBookSource source = ShardedBookSource.of(catalog, "shard-*.txt");
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Set<Thread> workers = ConcurrentHashMap.newKeySet();
+            Map<String, Long> genreCounts = source.collect(pool, Collectors.mapping(book -> {
+                workers.add(Thread.currentThread());
+                return book;
+            }, Collectors.groupingByConcurrent(Book::getGenre, Collectors.counting())));
+            int copies = IntStream.of(SHARD_COPIES).sum();
+
+            Assertions.assertFalse(workers.isEmpty());
+            for (Thread worker : workers) {
+                Assertions.assertTrue(worker instanceof ForkJoinWorkerThread, worker.getName());
+                Assertions.assertSame(pool, ((ForkJoinWorkerThread) worker).getPool());
+            }
+
+            Assertions.assertEquals(Long.valueOf(2L * copies), genreCounts.get("Science Fiction"));
+            Assertions.assertEquals(Long.valueOf(copies), genreCounts.get("Mystery"));
+            Assertions.assertEquals(6L * copies, genreCounts.values().stream().mapToLong(Long::longValue).sum());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void singleLargeShardSplitsOnRecordBoundaries() throws IOException {
+        Path shard = catalog.resolve("shard-0.txt");
+        Files.write(shard, Collections.nCopies(16, booksLines()).stream()
+                .flatMap(List::stream)
+                .collect(Collectors.toList()));
+
+        Spliterator<Book> whole = ShardedBookSource.of(catalog, "shard-*.txt").spliterator();
+        Spliterator<Book> prefix = whole.trySplit();
+
+        Assertions.assertNotNull(prefix);
+        Assertions.assertEquals(48, prefix.estimateSize());
+        Assertions.assertEquals(48, whole.estimateSize());
+        List<Book> books = new ArrayList<>();
+        prefix.forEachRemaining(books::add);
+        whole.forEachRemaining(books::add);
+        Assertions.assertEquals(96, books.size());
+        Assertions.assertEquals("Gulliver's Travels", books.get(48).getName());
+    }
+
+    @Test
+    public void recordIndexIgnoresIncompleteTrailingRecord() throws IOException {
+        Path shard = catalog.resolve("shard-0.txt");
+        Files.writeString(shard, "Emma\r\nJane Austen\r\nNovel\r\n4.5\r\nDracula\nBram Stoker\nHorror\n4\nHalf\nWritten");
+
+        long[] offsets = ShardSpliterator.indexRecords(shard);
+        List<Book> books = new ArrayList<>();
+        ShardedBookSource.of(catalog, "shard-*.txt").spliterator().forEachRemaining(books::add);
+
+        Assertions.assertEquals(3, offsets.length);
+        Assertions.assertEquals(Files.readString(shard).indexOf("Half"), offsets[2]);
+        Assertions.assertEquals(List.of("Emma", "Dracula"), books.stream().map(Book::getName).collect(Collectors.toList()));
+        Assertions.assertEquals("Jane Austen", books.get(0).getAuthor());
+    }
+
+    @Test
+    public void loneCarriageReturnsEndLinesLikeFilesLines() throws IOException {
+        Path shard = catalog.resolve("shard-0.txt");
+        Files.writeString(shard, String.join("\r", booksLines()) + "\r");
+
+        List<Book> expected;
+        try (Stream<String> lines = Files.lines(shard)) {
+            expected = StreamSupport.stream(new BookSpliterator(lines.spliterator()), false).collect(Collectors.toList());
+        }
+        List<Book> books = ShardedBookSource.of(catalog, "shard-*.txt").stream().collect(Collectors.toList());
+
+        Assertions.assertEquals(6, expected.size());
+        Assertions.assertEquals(7, ShardSpliterator.indexRecords(shard).length);
+        Assertions.assertEquals(expected.stream().map(Book::getName).collect(Collectors.toList()),
+                books.stream().map(Book::getName).collect(Collectors.toList()));
+    }
+
+    List<String> writeShards() throws IOException {
+        List<String> names = new ArrayList<>();
+        List<String> lines = booksLines();
+        for (int i = 0; i < SHARD_COPIES.length; i++) {
+            List<String> shard = new ArrayList<>();
+            for (int c = 0; c < SHARD_COPIES[i]; c++) {
+                shard.addAll(lines);
+                for (int r = 0; r < lines.size(); r += 4) {
+                    names.add(lines.get(r));
+                }
+            }
+            Files.write(catalog.resolve("shard-" + i + ".txt"), shard);
+        }
+        Files.writeString(catalog.resolve("README.md"), "not a shard");
+        return names;
+    }
+
+    List<String> booksLines() throws IOException {
+        return Files.readAllLines(Path.of(this.getClass().getResource("/Books.txt").getPath()));
+    }
+
+    //Ingests every shard matching a glob as one Book stream. Shards are split by byte size first,
+    //and a single remaining shard is split again on record boundaries so that one large file
+    //is worked on by several ForkJoin workers instead of leaving a long tail on one thread.
+    static class ShardedBookSource {
+        private final Path[] shards;
+        private final long[] sizes;
+
+        private ShardedBookSource(Path[] shards, long[] sizes) {
+            this.shards = shards;
+            this.sizes = sizes;
+        }
+
+        static ShardedBookSource of(Path directory, String glob) throws IOException {
+            List<Path> shards = new ArrayList<>();
+            try (DirectoryStream<Path> matches = Files.newDirectoryStream(directory, glob)) {
+                matches.forEach(shards::add);
+            }
+            shards.sort(Comparator.comparing(p -> p.getFileName().toString(), ParallelIngestTest::compareNatural));
+            long[] sizes = new long[shards.size()];
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = Files.size(shards.get(i));
+            }
+            return new ShardedBookSource(shards.toArray(new Path[0]), sizes);
+        }
+
+        Spliterator<Book> spliterator() {
+            return new ShardSpliterator(shards, sizes, 0, shards.length);
+        }
+
+        Stream<Book> stream() {
+            return StreamSupport.stream(spliterator(), true);
+        }
+
+        <R> R collect(ForkJoinPool pool, Collector<? super Book, ?, R> collector)
+                throws ExecutionException, InterruptedException {
+            return pool.submit(() -> stream().collect(collector)).get();
+        }
+    }
+
+    static class ShardSpliterator implements Spliterator<Book> {
+        private static final long BYTES_PER_RECORD_ESTIMATE = 64;
+        private final Path[] shards;
+        private final long[] sizes;
+        private int from;
+        private final int to;
+        private Spliterator<Book> current;
+
+        ShardSpliterator(Path[] shards, long[] sizes, int from, int to) {
+            this.shards = shards;
+            this.sizes = sizes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Book> action) {
+            for (;;) {
+                if (current != null && current.tryAdvance(action)) {
+                    return true;
+                }
+                if (from >= to) {
+                    current = null;
+                    return false;
+                }
+                current = load(shards[from++]);
+            }
+        }
+
+        @Override
+        public Spliterator<Book> trySplit() {
+            if (current != null) {
+                if (from < to) {
+                    Spliterator<Book> loaded = current;
+                    current = null;
+                    return loaded;
+                }
+                return current.trySplit();
+            }
+            if (to - from > 1) {
+                int mid = byteMidpoint();
+                Spliterator<Book> prefix = new ShardSpliterator(shards, sizes, from, mid);
+                from = mid;
+                return prefix;
+            }
+            if (to - from == 1) {
+                current = load(shards[from++]);
+                return current.trySplit();
+            }
+            return null;
+        }
+
+        private int byteMidpoint() {
+            long total = 0;
+            for (int i = from; i < to; i++) {
+                total += sizes[i];
+            }
+            long half = total / 2;
+            long seen = sizes[from];
+            int mid = from + 1;
+            while (mid < to - 1 && seen + sizes[mid] <= half) {
+                seen += sizes[mid++];
+            }
+            return mid;
+        }
+
+        @Override
+        public long estimateSize() {
+            long remaining = current == null ? 0 : current.estimateSize();
+            for (int i = from; i < to; i++) {
+                remaining += Math.max(1, sizes[i] / BYTES_PER_RECORD_ESTIMATE);
+            }
+            return remaining;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE;
+        }
+
+        private static Spliterator<Book> load(Path shard) {
+            long[] offsets = indexRecords(shard);
+            return new RecordSpliterator(shard, offsets, 0, offsets.length - 1);
+        }
+
+        //Byte offsets of every four-line record plus the end of the last complete one, found in one
+        //streaming pass over the raw bytes so only eight bytes per record stay on the heap.
+        //Lines end at \n, \r or \r\n, the same as for Files.lines and String.lines.
+        static long[] indexRecords(Path shard) {
+            long[] offsets = new long[64];
+            int records = 0;
+            long lines = 0;
+            long position = 0;
+            byte last = 0;
+            boolean lineStart = true;
+            try (InputStream in = Files.newInputStream(shard)) {
+                byte[] chunk = new byte[1 << 16];
+                int read;
+                while ((read = in.read(chunk)) > 0) {
+                    for (int i = 0; i < read; i++) {
+                        byte b = chunk[i];
+                        if (b == '\n' && last == '\r') {
+                            last = b;
+                            continue;
+                        }
+                        if (lineStart) {
+                            if (lines % 4 == 0) {
+                                if (records + 1 >= offsets.length) {
+                                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                                }
+                                offsets[records++] = position + i;
+                            }
+                            lineStart = false;
+                        }
+                        if (b == '\n' || b == '\r') {
+                            lines++;
+                            lineStart = true;
+                        }
+                        last = b;
+                    }
+                    position += read;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (!lineStart) {
+                lines++;
+            }
+            int complete = (int) (lines / 4);
+            offsets[complete] = complete < records ? offsets[complete] : position;
+            return Arrays.copyOf(offsets, complete + 1);
+        }
+    }
+
+    //Splits a shard on indexed record boundaries and reads only its own byte range, a chunk
+    //of about CHUNK_BYTES at a time whose lines are parsed by StreamsTest.BookSpliterator
+    static class RecordSpliterator implements Spliterator<Book> {
+        private static final long CHUNK_BYTES = 1 << 20;
+        private final Path shard;
+        private final long[] offsets;
+        private int from;
+        private final int to;
+        private Spliterator<Book> chunk = Spliterators.emptySpliterator();
+        private int buffered;
+
+        RecordSpliterator(Path shard, long[] offsets, int from, int to) {
+            this.shard = shard;
+            this.offsets = offsets;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Book> action) {
+            if (buffered == 0) {
+                if (from >= to) {
+                    return false;
+                }
+                chunk = readChunk();
+            }
+            buffered--;
+            return chunk.tryAdvance(action);
+        }
+
+        private Spliterator<Book> readChunk() {
+            int end = from + 1;
+            while (end < to && offsets[end + 1] - offsets[from] <= CHUNK_BYTES) {
+                end++;
+            }
+            long start = offsets[from];
+            ByteBuffer bytes = ByteBuffer.allocate(Math.toIntExact(offsets[end] - start));
+            try (FileChannel channel = FileChannel.open(shard, StandardOpenOption.READ)) {
+                while (bytes.hasRemaining()) {
+                    if (channel.read(bytes, start + bytes.position()) < 0) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buffered = end - from;
+            from = end;
+            String lines = new String(bytes.array(), 0, bytes.position(), StandardCharsets.UTF_8);
+            return new BookSpliterator(lines.lines().spliterator());
+        }
+
+        @Override
+        public Spliterator<Book> trySplit() {
+            if (buffered > 0) {
+                return null;
+            }
+            int mid = (from + to) >>> 1;
+            if (mid <= from) {
+                return null;
+            }
+            Spliterator<Book> prefix = new RecordSpliterator(shard, offsets, from, mid);
+            from = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return to - from + buffered;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.ORDERED | Spliterator.SIZED | Spliterator.SUBSIZED
+                    | Spliterator.NONNULL | Spliterator.IMMUTABLE;
+        }
+    }
+
+    //Orders shard-2 before shard-10
+    static int compareNatural(String a, String b) {
+        int i = 0, j = 0;
+        while (i < a.length() && j < b.length()) {
+            char ca = a.charAt(i), cb = b.charAt(j);
+            if (Character.isDigit(ca) && Character.isDigit(cb)) {
+                int si = i, sj = j;
+                while (i < a.length() && Character.isDigit(a.charAt(i))) i++;
+                while (j < b.length() && Character.isDigit(b.charAt(j))) j++;
+                String na = a.substring(si, i).replaceFirst("^0+(?=.)", "");
+                String nb = b.substring(sj, j).replaceFirst("^0+(?=.)", "");
+                int cmp = na.length() != nb.length() ? Integer.compare(na.length(), nb.length()) : na.compareTo(nb);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            } else {
+                if (ca != cb) {
+                    return Character.compare(ca, cb);
+                }
+                i++;
+                j++;
+            }
+        }
+        return Integer.compare(a.length() - i, b.length() - j);
+    }
+}
@@ -0,0 +1,379 @@
+package io.pusteblume;
+
+import io.pusteblume.AllocationBudgetTest.AllocationMeter;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.function.*;
+
+public class PrimitiveCurryingTest {
+
+    @Test
+    public void intCurrying() {
+        IntCurry2 add = a -> b -> a + b;
+
+        IntUnaryOperator addOne = add.partial(1);
+        Assertions.assertEquals(2, addOne.applyAsInt(1));
+        Assertions.assertEquals(7, add.applyAsInt(3, 4));
+        Assertions.assertEquals(7, add.uncurry().applyAsInt(3, 4));
+        Assertions.assertEquals(14, add.andThen(r -> r * 2).applyAsInt(3, 4));
+        Assertions.assertEquals(10, add.compose(a -> a * 2).applyAsInt(3, 4));
+        Assertions.assertEquals(9, IntCurry2.curry(Math::max).partial(9).applyAsInt(2));
+    }
+
+    @Test
+    public void doubleCurrying() {
+        DoubleCurry2 scale = factor -> value -> factor * value;
+
+        Assertions.assertEquals(5.0, scale.partial(2.5).applyAsDouble(2.0));
+        Assertions.assertEquals(5.0, scale.uncurry().applyAsDouble(2.5, 2.0));
+        Assertions.assertEquals(6.0, scale.andThen(r -> r + 1).applyAsDouble(2.5, 2.0));
+        Assertions.assertEquals(10.0, scale.compose(f -> f * 2).applyAsDouble(2.5, 2.0));
+        Assertions.assertEquals(-3.0, DoubleCurry2.curry(Math::min).applyAsDouble(-3, 4));
+    }
+
+    @Test
+    public void longToIntCurrying() {
+        LongToIntCurry compare = a -> b -> Long.compare(a, b);
+
+        Assertions.assertEquals(-1, compare.partial(1L).applyAsInt(2L));
+        Assertions.assertEquals(1, compare.uncurry().applyAsInt(3L, 2L));
+        Assertions.assertEquals(-2, compare.andThen(r -> r * 2).applyAsInt(1L, 5L));
+        Assertions.assertEquals(1, compare.compose(a -> a * 10).applyAsInt(1L, 5L));
+        Assertions.assertEquals(0, LongToIntCurry.curry(Long::compare).applyAsInt(7L, 7L));
+    }
+
+    @Test
+    public void cachedPartialsAreSharedForSmallConstants() {
+        IntCurry2 add = IntCurry2.curry(Integer::sum).cached();
+        Assertions.assertSame(add.partial(-128), add.partial(-128));
+        Assertions.assertSame(add.partial(127), add.partial(127));
+        Assertions.assertNotSame(add.partial(128), add.partial(128));
+        Assertions.assertEquals(300, add.partial(128).applyAsInt(172));
+
+        DoubleCurry2 multiply = DoubleCurry2.curry((a, b) -> a * b).cached();
+        Assertions.assertSame(multiply.partial(3.0), multiply.partial(3.0));
+        Assertions.assertNotSame(multiply.partial(0.5), multiply.partial(0.5));
+        Assertions.assertNotSame(multiply.partial(0.0), multiply.partial(-0.0));
+
+        LongToIntCurry signum = LongToIntCurry.curry((a, b) -> Long.signum(a - b)).cached();
+        Assertions.assertSame(signum.partial(0L), signum.partial(0L));
+        Assertions.assertEquals(-1, signum.partial(0L).applyAsInt(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void hotPathsDoNotAllocate() {
+        IntCurry2 add = IntCurry2.curry(Integer::sum);
+        IntCurry2 cachedAdd = add.cached();
+        IntBinaryOperator uncurried = cachedAdd.uncurry();
+        IntCurry2 doubled = add.andThen(r -> r * 2);
+        IntCurry2 halved = add.compose(a -> a / 2);
+        Function<Integer, Function<Integer, Integer>> boxedAdd = a -> b -> a + b;
+        int iterations = 1_000_000;
+
+        //warm up so the measured loops run compiled
+        for (int round = 0; round < 5; round++) {
+            sumPartials(cachedAdd, iterations);
+            sumPartials(add, iterations);
+            sumUncurried(uncurried, iterations);
+            sumUncurried(doubled.uncurry(), iterations);
+            sumUncurried(halved.uncurry(), iterations);
+            sumBoxed(boxedAdd, iterations);
+        }
+
+        long cached = AllocationMeter.allocatedBytes(() -> sumPartials(cachedAdd, iterations));
+        long uncached = AllocationMeter.allocatedBytes(() -> sumPartials(add, iterations));
+        long viaUncurry = AllocationMeter.allocatedBytes(() -> sumUncurried(uncurried, iterations));
+        long viaAndThen = AllocationMeter.allocatedBytes(() -> sumUncurried(doubled.uncurry(), iterations));
+        long viaCompose = AllocationMeter.allocatedBytes(() -> sumUncurried(halved.uncurry(), iterations));
+        long boxed = AllocationMeter.allocatedBytes(() -> sumBoxed(boxedAdd, iterations));
+        System.out.println("bytes per curried add: cached " + (double) cached / iterations
+                + ", uncached partial " + (double) uncached / iterations
+                + ", uncurried " + (double) viaUncurry / iterations
+                + ", andThen " + (double) viaAndThen / iterations
+                + ", compose " + (double) viaCompose / iterations
+                + ", boxed Function " + (double) boxed / iterations);
+
+        //Only the primitive paths are asserted. With escape analysis on, the JIT scalar replaces the boxed
+        //Function's Integers and partials too, so the boxed baseline also measures 0 bytes and this test does
+        //not tell the two apart. With -XX:-DoEscapeAnalysis the boxed baseline allocates 64 bytes per add while
+        //the cached, uncurried, andThen and compose paths stay at 0. An uncached partial always allocates its
+        //capturing lambda, which is what cached() is for.
+        Assertions.assertTrue(cached < iterations / 100, "cached partials allocated " + cached + " bytes");
+        Assertions.assertTrue(viaUncurry < iterations / 100, "uncurried apply allocated " + viaUncurry + " bytes");
+        Assertions.assertTrue(viaAndThen < iterations / 100, "andThen apply allocated " + viaAndThen + " bytes");
+        Assertions.assertTrue(viaCompose < iterations / 100, "compose apply allocated " + viaCompose + " bytes");
+    }
+
+    static int sumPartials(IntCurry2 add, int iterations) {
+        int sum = 0;
+        for (int i = 0; i < iterations; i++) {
+            sum = add.partial(i & 0x7F).applyAsInt(sum);
+        }
+        return sum;
+    }
+
+    static int sumUncurried(IntBinaryOperator add, int iterations) {
+        int sum = 0;
+        for (int i = 0; i < iterations; i++) {
+            sum = add.applyAsInt(i, sum);
+        }
+        return sum;
+    }
+
+    static int sumBoxed(Function<Integer, Function<Integer, Integer>> add, int iterations) {
+        int sum = 0;
+        for (int i = 0; i < iterations; i++) {
+            sum = add.apply(i + 1000).apply(sum);
+        }
+        return sum;
+    }
+
+    //Partial applications for arguments in this range are created once by cached()
+    static final int CACHE_LOW = -128;
+    static final int CACHE_HIGH = 127;
+
+    @FunctionalInterface
+    public interface IntCurry2 {
+
+        IntUnaryOperator partial(int a);
+
+        default int applyAsInt(int a, int b) {
+            return partial(a).applyAsInt(b);
+        }
+
+        default IntBinaryOperator uncurry() {
+            return this::applyAsInt;
+        }
+
+        //Like curry, the derived functions apply both arguments at once without creating partials
+        default IntCurry2 andThen(IntUnaryOperator after) {
+            IntCurry2 first = this;
+            return new IntCurry2() {
+                @Override
+                public IntUnaryOperator partial(int a) {
+                    return first.partial(a).andThen(after);
+                }
+
+                @Override
+                public int applyAsInt(int a, int b) {
+                    return after.applyAsInt(first.applyAsInt(a, b));
+                }
+            };
+        }
+
+        default IntCurry2 compose(IntUnaryOperator before) {
+            IntCurry2 second = this;
+            return new IntCurry2() {
+                @Override
+                public IntUnaryOperator partial(int a) {
+                    return second.partial(before.applyAsInt(a));
+                }
+
+                @Override
+                public int applyAsInt(int a, int b) {
+                    return second.applyAsInt(before.applyAsInt(a), b);
+                }
+            };
+        }
+
+        default IntCurry2 cached() {
+            IntUnaryOperator[] partials = new IntUnaryOperator[CACHE_HIGH - CACHE_LOW + 1];
+            for (int a = CACHE_LOW; a <= CACHE_HIGH; a++) {
+                partials[a - CACHE_LOW] = partial(a);
+            }
+            IntCurry2 uncached = this;
+            return new IntCurry2() {
+                @Override
+                public IntUnaryOperator partial(int a) {
+                    return a >= CACHE_LOW && a <= CACHE_HIGH ? partials[a - CACHE_LOW] : uncached.partial(a);
+                }
+
+                @Override
+                public int applyAsInt(int a, int b) {
+                    return uncached.applyAsInt(a, b);
+                }
+            };
+        }
+
+        //Unlike a curried lambda, applying both arguments at once goes straight to f without a partial
+        static IntCurry2 curry(IntBinaryOperator f) {
+            return new IntCurry2() {
+                @Override
+                public IntUnaryOperator partial(int a) {
+                    return b -> f.applyAsInt(a, b);
+                }
+
+                @Override
+                public int applyAsInt(int a, int b) {
+                    return f.applyAsInt(a, b);
+                }
+            };
+        }
+    }
+
+    @FunctionalInterface
+    public interface DoubleCurry2 {
+
+        DoubleUnaryOperator partial(double a);
+
+        default double applyAsDouble(double a, double b) {
+            return partial(a).applyAsDouble(b);
+        }
+
+        default DoubleBinaryOperator uncurry() {
+            return this::applyAsDouble;
+        }
+
+        default DoubleCurry2 andThen(DoubleUnaryOperator after) {
+            DoubleCurry2 first = this;
+            return new DoubleCurry2() {
+                @Override
+                public DoubleUnaryOperator partial(double a) {
+                    return first.partial(a).andThen(after);
+                }
+
+                @Override
+                public double applyAsDouble(double a, double b) {
+                    return after.applyAsDouble(first.applyAsDouble(a, b));
+                }
+            };
+        }
+
+        default DoubleCurry2 compose(DoubleUnaryOperator before) {
+            DoubleCurry2 second = this;
+            return new DoubleCurry2() {
+                @Override
+                public DoubleUnaryOperator partial(double a) {
+                    return second.partial(before.applyAsDouble(a));
+                }
+
+                @Override
+                public double applyAsDouble(double a, double b) {
+                    return second.applyAsDouble(before.applyAsDouble(a), b);
+                }
+            };
+        }
+
+        //Only whole numbers are cached, -0.0 is left out so it is not confused with 0.0
+        default DoubleCurry2 cached() {
+            DoubleUnaryOperator[] partials = new DoubleUnaryOperator[CACHE_HIGH - CACHE_LOW + 1];
+            for (int a = CACHE_LOW; a <= CACHE_HIGH; a++) {
+                partials[a - CACHE_LOW] = partial(a);
+            }
+            DoubleCurry2 uncached = this;
+            return new DoubleCurry2() {
+                @Override
+                public DoubleUnaryOperator partial(double a) {
+                    int index = (int) a;
+                    return index == a && index >= CACHE_LOW && index <= CACHE_HIGH
+                            && Double.doubleToRawLongBits(a) != Double.doubleToRawLongBits(-0.0)
+                            ? partials[index - CACHE_LOW]
+                            : uncached.partial(a);
+                }
+
+                @Override
+                public double applyAsDouble(double a, double b) {
+                    return uncached.applyAsDouble(a, b);
+                }
+            };
+        }
+
+        static DoubleCurry2 curry(DoubleBinaryOperator f) {
+            return new DoubleCurry2() {
+                @Override
+                public DoubleUnaryOperator partial(double a) {
+                    return b -> f.applyAsDouble(a, b);
+                }
+
+                @Override
+                public double applyAsDouble(double a, double b) {
+                    return f.applyAsDouble(a, b);
+                }
+            };
+        }
+    }
+
+    @FunctionalInterface
+    public interface LongToIntCurry {
+
+        LongToIntFunction partial(long a);
+
+        default int applyAsInt(long a, long b) {
+            return partial(a).applyAsInt(b);
+        }
+
+        default LongBinaryToIntFunction uncurry() {
+            return this::applyAsInt;
+        }
+
+        default LongToIntCurry andThen(IntUnaryOperator after) {
+            LongToIntCurry first = this;
+            return new LongToIntCurry() {
+                @Override
+                public LongToIntFunction partial(long a) {
+                    LongToIntFunction partial = first.partial(a);
+                    return b -> after.applyAsInt(partial.applyAsInt(b));
+                }
+
+                @Override
+                public int applyAsInt(long a, long b) {
+                    return after.applyAsInt(first.applyAsInt(a, b));
+                }
+            };
+        }
+
+        default LongToIntCurry compose(LongUnaryOperator before) {
+            LongToIntCurry second = this;
+            return new LongToIntCurry() {
+                @Override
+                public LongToIntFunction partial(long a) {
+                    return second.partial(before.applyAsLong(a));
+                }
+
+                @Override
+                public int applyAsInt(long a, long b) {
+                    return second.applyAsInt(before.applyAsLong(a), b);
+                }
+            };
+        }
+
+        default LongToIntCurry cached() {
+            LongToIntFunction[] partials = new LongToIntFunction[CACHE_HIGH - CACHE_LOW + 1];
+            for (int a = CACHE_LOW; a <= CACHE_HIGH; a++) {
+                partials[a - CACHE_LOW] = partial(a);
+            }
+            LongToIntCurry uncached = this;
+            return new LongToIntCurry() {
+                @Override
+                public LongToIntFunction partial(long a) {
+                    return a >= CACHE_LOW && a <= CACHE_HIGH ? partials[(int) a - CACHE_LOW] : uncached.partial(a);
+                }
+
+                @Override
+                public int applyAsInt(long a, long b) {
+                    return uncached.applyAsInt(a, b);
+                }
+            };
+        }
+
+        static LongToIntCurry curry(LongBinaryToIntFunction f) {
+            return new LongToIntCurry() {
+                @Override
+                public LongToIntFunction partial(long a) {
+                    return b -> f.applyAsInt(a, b);
+                }
+
+                @Override
+                public int applyAsInt(long a, long b) {
+                    return f.applyAsInt(a, b);
+                }
+            };
+        }
+    }
+
+    @FunctionalInterface
+    public interface LongBinaryToIntFunction {
+        int applyAsInt(long a, long b);
+    }
+}
@@ -0,0 +1,746 @@
+package io.pusteblume;
+
+import io.pusteblume.StreamsTest.Book;
+import io.pusteblume.StreamsTest.BookSpliterator;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class ReactiveStreamsTest {
+
+    @Test
+    public void publisherHonoursDemand() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            CollectingSubscriber<Book> subscriber = CollectingSubscriber.requesting(2);
+            new BookPublisher(booksPath(), executor).subscribe(subscriber);
+
+            subscriber.awaitReceived(2);
+            Thread.sleep(50);
+            Assertions.assertEquals(2, subscriber.received().size());
+
+            subscriber.request(Long.MAX_VALUE);
+            Assertions.assertEquals(6, subscriber.result().get(5, TimeUnit.SECONDS).size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void bufferBatchesBooks() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            BatchingProcessor<Book> buffer = BatchingProcessor.buffer(4);
+            CollectingSubscriber<List<Book>> subscriber = CollectingSubscriber.oneByOne(Duration.ofMillis(10));
+            new BookPublisher(booksPath(), executor).subscribe(buffer);
+            buffer.subscribe(subscriber);
+
+            List<Integer> batchSizes = subscriber.result().get(5, TimeUnit.SECONDS)
+                    .stream()
+                    .map(List::size)
+                    .collect(Collectors.toList());
+            Assertions.assertEquals(List.of(4, 2), batchSizes);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void windowFlushesPartialBatches() throws Exception {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        try (SubmissionPublisher<Integer> source = new SubmissionPublisher<>()) {
+            BatchingProcessor<Integer> window = BatchingProcessor.window(Duration.ofMillis(20), 10, timer);
+            CollectingSubscriber<List<Integer>> subscriber = CollectingSubscriber.requesting(Long.MAX_VALUE);
+            source.subscribe(window);
+            window.subscribe(subscriber);
+
+            source.submit(1);
+            source.submit(2);
+            source.submit(3);
+            subscriber.awaitReceived(1);
+            Assertions.assertEquals(List.of(List.of(1, 2, 3)), subscriber.received());
+        } finally {
+            timer.shutdownNow();
+        }
+    }
+
+    @Test
+    public void windowStartsWithFirstItemAfterIdleTicks() throws Exception {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        try (SubmissionPublisher<Integer> source = new SubmissionPublisher<>()) {
+            BatchingProcessor<Integer> window = BatchingProcessor.window(Duration.ofMillis(50), 10, timer);
+            CollectingSubscriber<List<Integer>> subscriber = CollectingSubscriber.requesting(Long.MAX_VALUE);
+            source.subscribe(window);
+            window.subscribe(subscriber);
+
+            Thread.sleep(150);
+            source.submit(1);
+            Thread.sleep(10);
+            source.submit(2);
+            source.submit(3);
+            subscriber.awaitReceived(1);
+            Assertions.assertEquals(List.of(List.of(1, 2, 3)), subscriber.received());
+        } finally {
+            timer.shutdownNow();
+        }
+    }
+
+    @Test
+    public void parallelMapKeepsSourceOrderUnderSlowConsumer() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            ParallelMapProcessor<Book, String> toName = new ParallelMapProcessor<>(Book::getName, 3, executor);
+            BatchingProcessor<String> buffer = BatchingProcessor.buffer(2);
+            CollectingSubscriber<List<String>> subscriber = CollectingSubscriber.oneByOne(Duration.ofMillis(10));
+            new BookPublisher(booksPath(), executor).subscribe(toName);
+            toName.subscribe(buffer);
+            buffer.subscribe(subscriber);
+
+            List<String> names = subscriber.result().get(5, TimeUnit.SECONDS)
+                    .stream()
+                    .flatMap(List::stream)
+                    .collect(Collectors.toList());
+            Assertions.assertEquals(List.of(
+                    "Gulliver's Travels", "Frankenstein", "The Woman in White",
+                    "Alice's Adventures In Wonderland", "Three Men in a Boat", "Brave New World"), names);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void parallelMapPropagatesErrors() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            ParallelMapProcessor<Book, String> failing = new ParallelMapProcessor<>(b -> {
+                throw new IllegalStateException(b.getName());
+            }, 2, executor);
+            CollectingSubscriber<String> subscriber = CollectingSubscriber.requesting(Long.MAX_VALUE);
+            new BookPublisher(booksPath(), executor).subscribe(failing);
+            failing.subscribe(subscriber);
+
+            ExecutionException thrown = Assertions.assertThrows(ExecutionException.class,
+                    () -> subscriber.result().get(5, TimeUnit.SECONDS));
+            Assertions.assertTrue(thrown.getCause() instanceof IllegalStateException);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void parallelMapRoutesRejectionToOnErrorAndDropsLateItems() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        AtomicInteger submitted = new AtomicInteger();
+        AtomicBoolean upstreamCancelled = new AtomicBoolean();
+        ParallelMapProcessor<String, Integer> lengths = new ParallelMapProcessor<>(String::length, 2, task -> {
+            submitted.incrementAndGet();
+            executor.execute(task);
+        });
+        lengths.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+            }
+
+            @Override
+            public void cancel() {
+                upstreamCancelled.set(true);
+            }
+        });
+        CollectingSubscriber<Integer> subscriber = CollectingSubscriber.requesting(Long.MAX_VALUE);
+        lengths.subscribe(subscriber);
+
+        lengths.onNext("rejected");
+        ExecutionException thrown = Assertions.assertThrows(ExecutionException.class,
+                () -> subscriber.result().get(5, TimeUnit.SECONDS));
+        Assertions.assertTrue(thrown.getCause() instanceof RejectedExecutionException);
+        Assertions.assertTrue(upstreamCancelled.get());
+
+        lengths.onNext("late");
+        Assertions.assertEquals(1, submitted.get());
+    }
+
+    Path booksPath() {
+        return Path.of(this.getClass().getResource("/Books.txt").getPath());
+    }
+
+    static void addCap(AtomicLong requested, long n) {
+        requested.getAndUpdate(r -> r + n < 0 ? Long.MAX_VALUE : r + n);
+    }
+
+    static void consume(AtomicLong requested, long n) {
+        requested.getAndUpdate(r -> r == Long.MAX_VALUE ? r : r - n);
+    }
+
+    //Pulls books from the BookSpliterator only as far as the subscriber requested
+    static class BookPublisher implements Flow.Publisher<Book> {
+        private final Path path;
+        private final Executor executor;
+
+        public BookPublisher(Path path, Executor executor) {
+            this.path = path;
+            this.executor = executor;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super Book> subscriber) {
+            Stream<String> lines;
+            try {
+                lines = Files.lines(path);
+            } catch (IOException e) {
+                failSubscriber(subscriber, e);
+                return;
+            }
+            subscriber.onSubscribe(new BookSubscription(subscriber, lines, executor));
+        }
+    }
+
+    static class BookSubscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super Book> subscriber;
+        private final Stream<String> lines;
+        private final Spliterator<Book> books;
+        private final Executor executor;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable error;
+        private boolean terminated;
+
+        BookSubscription(Flow.Subscriber<? super Book> subscriber, Stream<String> lines, Executor executor) {
+            this.subscriber = subscriber;
+            this.lines = lines;
+            this.books = new BookSpliterator(lines.spliterator());
+            this.executor = executor;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("non-positive request: " + n);
+            } else {
+                addCap(requested, n);
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (wip.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                if (!terminated) {
+                    drain();
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            if (cancelled) {
+                terminate();
+                return;
+            }
+            if (error != null) {
+                terminate();
+                subscriber.onError(error);
+                return;
+            }
+            long demand = requested.get();
+            long emitted = 0;
+            try {
+                while (emitted != demand && !cancelled) {
+                    if (!books.tryAdvance(subscriber::onNext)) {
+                        terminate();
+                        subscriber.onComplete();
+                        return;
+                    }
+                    emitted++;
+                }
+            } catch (RuntimeException e) {
+                terminate();
+                subscriber.onError(e);
+                return;
+            }
+            consume(requested, emitted);
+        }
+
+        private void terminate() {
+            terminated = true;
+            lines.close();
+        }
+    }
+
+    //Collects upstream items into lists of at most maxSize elements. With a maxTime set, a partial
+    //list is emitted as well once its first item has waited maxTime and there is demand for it.
+    static class BatchingProcessor<T> implements Flow.Processor<T, List<T>> {
+        private final int maxSize;
+        private final Duration maxTime;
+        private final ScheduledExecutorService timer;
+        private final List<T> buffer = new ArrayList<>();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private long outstanding;
+        private volatile Flow.Subscription upstream;
+        private volatile Flow.Subscriber<? super List<T>> downstream;
+        private volatile ScheduledFuture<?> ticker;
+        private long windowStart;
+        private volatile boolean upstreamDone;
+        private volatile boolean cancelled;
+        private volatile Throwable error;
+        private boolean terminated;
+
+        private BatchingProcessor(int maxSize, Duration maxTime, ScheduledExecutorService timer) {
+            if (maxSize <= 0) {
+                throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+            }
+            this.maxSize = maxSize;
+            this.maxTime = maxTime;
+            this.timer = timer;
+        }
+
+        static <T> BatchingProcessor<T> buffer(int size) {
+            return new BatchingProcessor<>(size, null, null);
+        }
+
+        static <T> BatchingProcessor<T> window(Duration time, int maxSize, ScheduledExecutorService timer) {
+            return new BatchingProcessor<>(maxSize, Objects.requireNonNull(time), Objects.requireNonNull(timer));
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super List<T>> subscriber) {
+            if (downstream != null) {
+                rejectSubscriber(subscriber);
+                return;
+            }
+            downstream = subscriber;
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    if (n <= 0) {
+                        error = new IllegalArgumentException("non-positive request: " + n);
+                    } else {
+                        addCap(requested, n);
+                    }
+                    drain();
+                }
+
+                @Override
+                public void cancel() {
+                    cancelled = true;
+                    drain();
+                }
+            });
+            drain();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            if (upstream != null) {
+                subscription.cancel();
+                return;
+            }
+            upstream = subscription;
+            if (maxTime != null) {
+                long period = Math.max(1, maxTime.toMillis() / 4);
+                ticker = timer.scheduleAtFixedRate(this::drain, period, period, TimeUnit.MILLISECONDS);
+            }
+            drain();
+        }
+
+        @Override
+        public void onNext(T item) {
+            synchronized (this) {
+                if (buffer.isEmpty()) {
+                    windowStart = System.nanoTime();
+                }
+                buffer.add(item);
+                outstanding--;
+            }
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            drain();
+        }
+
+        @Override
+        public void onComplete() {
+            upstreamDone = true;
+            drain();
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                if (!terminated && downstream != null) {
+                    drainOnce(downstream);
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drainOnce(Flow.Subscriber<? super List<T>> subscriber) {
+            if (cancelled) {
+                terminate();
+                return;
+            }
+            if (error != null) {
+                terminate();
+                subscriber.onError(error);
+                return;
+            }
+            List<T> batch;
+            while ((batch = nextBatch()) != null) {
+                subscriber.onNext(batch);
+                if (cancelled) {
+                    terminate();
+                    return;
+                }
+            }
+            boolean done = upstreamDone;
+            boolean empty;
+            synchronized (this) {
+                empty = buffer.isEmpty();
+            }
+            if (done && empty) {
+                terminate();
+                subscriber.onComplete();
+                return;
+            }
+            replenish();
+        }
+
+        private synchronized List<T> nextBatch() {
+            if (buffer.isEmpty() || requested.get() == 0) {
+                return null;
+            }
+            if (buffer.size() < maxSize && !windowElapsed() && !upstreamDone) {
+                return null;
+            }
+            List<T> head = buffer.subList(0, Math.min(maxSize, buffer.size()));
+            List<T> batch = new ArrayList<>(head);
+            head.clear();
+            windowStart = System.nanoTime();
+            consume(requested, 1);
+            return batch;
+        }
+
+        private boolean windowElapsed() {
+            return maxTime != null && System.nanoTime() - windowStart >= maxTime.toNanos();
+        }
+
+        //Keeps at most requested * maxSize items buffered or in flight from upstream
+        private void replenish() {
+            Flow.Subscription subscription = upstream;
+            if (subscription == null || upstreamDone) {
+                return;
+            }
+            long toRequest;
+            synchronized (this) {
+                long demand = requested.get();
+                long wanted = demand >= Long.MAX_VALUE / maxSize ? Long.MAX_VALUE : demand * maxSize;
+                toRequest = wanted - buffer.size() - outstanding;
+                if (toRequest <= 0) {
+                    return;
+                }
+                outstanding += toRequest;
+            }
+            subscription.request(toRequest);
+        }
+
+        private void terminate() {
+            terminated = true;
+            ScheduledFuture<?> scheduled = ticker;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+            Flow.Subscription subscription = upstream;
+            if (subscription != null) {
+                subscription.cancel();
+            }
+            synchronized (this) {
+                buffer.clear();
+            }
+        }
+    }
+
+    //Runs the mapper for up to parallelism items at once and emits the results in upstream order
+    static class ParallelMapProcessor<T, R> implements Flow.Processor<T, R> {
+        private final Function<? super T, ? extends R> mapper;
+        private final int parallelism;
+        private final Executor executor;
+        private final Queue<CompletableFuture<R>> inFlight = new ConcurrentLinkedQueue<>();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile Flow.Subscription upstream;
+        private volatile Flow.Subscriber<? super R> downstream;
+        private volatile boolean upstreamDone;
+        private volatile boolean cancelled;
+        private volatile Throwable error;
+        private volatile boolean terminated;
+
+        public ParallelMapProcessor(Function<? super T, ? extends R> mapper, int parallelism, Executor executor) {
+            if (parallelism <= 0) {
+                throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+            }
+            this.mapper = mapper;
+            this.parallelism = parallelism;
+            this.executor = executor;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super R> subscriber) {
+            if (downstream != null) {
+                rejectSubscriber(subscriber);
+                return;
+            }
+            downstream = subscriber;
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    if (n <= 0) {
+                        error = new IllegalArgumentException("non-positive request: " + n);
+                    } else {
+                        addCap(requested, n);
+                    }
+                    drain();
+                }
+
+                @Override
+                public void cancel() {
+                    cancelled = true;
+                    drain();
+                }
+            });
+            drain();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            if (upstream != null) {
+                subscription.cancel();
+                return;
+            }
+            upstream = subscription;
+            subscription.request(parallelism);
+        }
+
+        @Override
+        public void onNext(T item) {
+            if (terminated || cancelled) {
+                return;
+            }
+            CompletableFuture<R> result;
+            try {
+                result = CompletableFuture.supplyAsync(() -> mapper.apply(item), executor);
+            } catch (RejectedExecutionException e) {
+                onError(e);
+                return;
+            }
+            inFlight.offer(result);
+            //terminate may have emptied inFlight between the check above and the offer
+            if (terminated && inFlight.remove(result)) {
+                result.cancel(false);
+                return;
+            }
+            result.whenComplete((r, e) -> drain());
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            drain();
+        }
+
+        @Override
+        public void onComplete() {
+            upstreamDone = true;
+            drain();
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                if (!terminated && downstream != null) {
+                    drainOnce(downstream);
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drainOnce(Flow.Subscriber<? super R> subscriber) {
+            for (;;) {
+                if (cancelled) {
+                    terminate();
+                    return;
+                }
+                if (error != null) {
+                    terminate();
+                    subscriber.onError(error);
+                    return;
+                }
+                boolean done = upstreamDone;
+                CompletableFuture<R> head = inFlight.peek();
+                if (head == null) {
+                    if (done) {
+                        terminate();
+                        subscriber.onComplete();
+                    }
+                    return;
+                }
+                if (!head.isDone() || requested.get() == 0) {
+                    return;
+                }
+                inFlight.poll();
+                R value;
+                try {
+                    value = head.join();
+                } catch (CompletionException e) {
+                    terminate();
+                    subscriber.onError(e.getCause());
+                    return;
+                }
+                subscriber.onNext(value);
+                consume(requested, 1);
+                upstream.request(1);
+            }
+        }
+
+        private void terminate() {
+            terminated = true;
+            Flow.Subscription subscription = upstream;
+            if (subscription != null) {
+                subscription.cancel();
+            }
+            CompletableFuture<R> pending;
+            while ((pending = inFlight.poll()) != null) {
+                pending.cancel(false);
+            }
+        }
+    }
+
+    static void rejectSubscriber(Flow.Subscriber<?> subscriber) {
+        failSubscriber(subscriber, new IllegalStateException("only a single subscriber is supported"));
+    }
+
+    static void failSubscriber(Flow.Subscriber<?> subscriber, Throwable error) {
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+        subscriber.onError(error);
+    }
+
+    //Either requests a fixed amount up front, or one item at a time while sleeping to act as a slow stage
+    static class CollectingSubscriber<T> implements Flow.Subscriber<T> {
+        private final long initialRequest;
+        private final boolean oneByOne;
+        private final Duration delay;
+        private final List<T> received = Collections.synchronizedList(new ArrayList<>());
+        private final CompletableFuture<List<T>> result = new CompletableFuture<>();
+        private volatile Flow.Subscription subscription;
+
+        private CollectingSubscriber(long initialRequest, boolean oneByOne, Duration delay) {
+            this.initialRequest = initialRequest;
+            this.oneByOne = oneByOne;
+            this.delay = delay;
+        }
+
+        static <T> CollectingSubscriber<T> requesting(long n) {
+            return new CollectingSubscriber<>(n, false, Duration.ZERO);
+        }
+
+        static <T> CollectingSubscriber<T> oneByOne(Duration delay) {
+            return new CollectingSubscriber<>(1, true, delay);
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(initialRequest);
+        }
+
+        @Override
+        public void onNext(T item) {
+            received.add(item);
+            synchronized (this) {
+                notifyAll();
+            }
+            if (!delay.isZero()) {
+                try {
+                    Thread.sleep(delay.toMillis());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (oneByOne) {
+                subscription.request(1);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            result.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            result.complete(new ArrayList<>(received));
+        }
+
+        void request(long n) {
+            subscription.request(n);
+        }
+
+        synchronized void awaitReceived(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (received.size() < count && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+        }
+
+        List<T> received() {
+            return new ArrayList<>(received);
+        }
+
+        CompletableFuture<List<T>> result() {
+            return result;
+        }
+    }
+}
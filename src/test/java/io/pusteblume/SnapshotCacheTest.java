@@ -0,0 +1,496 @@
+package io.pusteblume;
+
+import io.pusteblume.StreamsTest.Book;
+import io.pusteblume.StreamsTest.BookSpliterator;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+public class SnapshotCacheTest {
+
+    @TempDir
+    Path workDir;
+
+    @Test
+    public void secondLoadIsServedFromSnapshot() throws IOException {
+        Path books = copyBooks("Books.txt");
+        BookSnapshotCache cache = new BookSnapshotCache(workDir.resolve("cache"), 1 << 20);
+
+        List<Book> parsed = cache.load(books);
+        List<Book> cached = cache.load(books);
+
+        Assertions.assertEquals(1, cache.misses());
+        Assertions.assertEquals(1, cache.hits());
+        Assertions.assertEquals(describe(parsed), describe(cached));
+        Assertions.assertEquals(6, cached.size());
+    }
+
+    @Test
+    public void snapshotLoadsFasterThanReparsing() throws IOException {
+        Path catalog = workDir.resolve("catalog.txt");
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 200_000; i++) {
+            lines.add("book " + i);
+            lines.add("author " + i % 5_000);
+            lines.add("genre " + i % 20);
+            lines.add(Double.toString(i % 51 / 10.0));
+        }
+        Files.write(catalog, lines);
+        //throw-away caches warm up parsing and snapshot reading before anything is timed
+        for (int round = 0; round < 5; round++) {
+            BookSnapshotCache warmUp = new BookSnapshotCache(workDir.resolve("warm-up-" + round), 1 << 30);
+            warmUp.load(catalog);
+            warmUp.load(catalog);
+        }
+
+        BookSnapshotCache cache = new BookSnapshotCache(workDir.resolve("cache"), 1 << 30);
+        long start = System.nanoTime();
+        cache.load(catalog);
+        long parseNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        List<Book> cached = cache.load(catalog);
+        long snapshotNanos = System.nanoTime() - start;
+        System.out.println("200000 books parsed in " + parseNanos / 1_000_000 + "ms, snapshot loaded in "
+                + snapshotNanos / 1_000_000 + "ms");
+
+        Assertions.assertEquals(1, cache.hits());
+        Assertions.assertEquals(200_000, cached.size());
+        Assertions.assertTrue(snapshotNanos * 2 < parseNanos, "snapshot load was not under half of a reparse");
+    }
+
+    @Test
+    public void changedContentInvalidatesSnapshot() throws IOException {
+        Path books = copyBooks("Books.txt");
+        BookSnapshotCache cache = new BookSnapshotCache(workDir.resolve("cache"), 1 << 20);
+        cache.load(books);
+
+        FileTime mtime = Files.getLastModifiedTime(books);
+        String content = Files.readString(books);
+        Files.writeString(books, content.replace("Brave New World", "Brave Old World"));
+        Files.setLastModifiedTime(books, mtime);
+
+        List<Book> reloaded = cache.load(books);
+        Assertions.assertEquals(2, cache.misses());
+        Assertions.assertEquals("Brave Old World", reloaded.get(5).getName());
+        Assertions.assertEquals(describe(reloaded), describe(cache.load(books)));
+        Assertions.assertEquals(1, cache.hits());
+    }
+
+    @Test
+    public void corruptSnapshotIsDiscarded() throws IOException {
+        Path books = copyBooks("Books.txt");
+        Path cacheDir = workDir.resolve("cache");
+        BookSnapshotCache cache = new BookSnapshotCache(cacheDir, 1 << 20);
+        cache.load(books);
+
+        try (Stream<Path> snapshots = Files.list(cacheDir)) {
+            for (Path snapshot : snapshots.collect(Collectors.toList())) {
+                byte[] bytes = Files.readAllBytes(snapshot);
+                Files.write(snapshot, Arrays.copyOf(bytes, bytes.length / 2));
+            }
+        }
+
+        Assertions.assertEquals(6, cache.load(books).size());
+        Assertions.assertEquals(2, cache.misses());
+        Assertions.assertEquals(6, cache.load(books).size());
+        Assertions.assertEquals(1, cache.hits());
+    }
+
+    @Test
+    public void flippedPayloadBitIsCaughtByChecksum() throws IOException {
+        Path books = copyBooks("Books.txt");
+        BookSnapshotCache cache = new BookSnapshotCache(workDir.resolve("cache"), 1 << 20);
+        List<Book> parsed = cache.load(books);
+
+        Path snapshot = cache.entryFor(books);
+        byte[] bytes = Files.readAllBytes(snapshot);
+        //the score of the last record sits right before the eight byte trailer
+        bytes[bytes.length - Long.BYTES - 2] ^= 0x01;
+        Files.write(snapshot, bytes);
+
+        Assertions.assertEquals(describe(parsed), describe(cache.load(books)));
+        Assertions.assertEquals(2, cache.misses());
+        Assertions.assertEquals(0, cache.hits());
+    }
+
+    @Test
+    public void catalogWithOversizedStringIsNotSnapshotted() throws IOException {
+        Path books = copyBooks("Books.txt");
+        String longName = "x".repeat((1 << 16) + 1);
+        Files.writeString(books, Files.readString(books).replace("Brave New World", longName));
+        BookSnapshotCache cache = new BookSnapshotCache(workDir.resolve("cache"), 1 << 30);
+
+        Assertions.assertEquals(longName, cache.load(books).get(5).getName());
+        Assertions.assertFalse(Files.exists(cache.entryFor(books)));
+        Assertions.assertEquals(longName, cache.load(books).get(5).getName());
+        Assertions.assertEquals(2, cache.misses());
+        Assertions.assertEquals(0, cache.hits());
+    }
+
+    @Test
+    public void leastRecentlyUsedSnapshotsAreEvictedOverSizeCap() throws IOException {
+        Path first = copyBooks("first.txt");
+        Path second = copyBooks("second.txt");
+        Path third = copyBooks("third.txt");
+        Path cacheDir = workDir.resolve("cache");
+        BookSnapshotCache probe = new BookSnapshotCache(workDir.resolve("probe"), 1 << 20);
+        probe.load(first);
+        long entrySize = probe.sizeOnDisk();
+
+        BookSnapshotCache cache = new BookSnapshotCache(cacheDir, 2 * entrySize + entrySize / 2);
+        cache.load(first);
+        cache.load(second);
+        Files.setLastModifiedTime(cache.entryFor(first), FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+        Files.setLastModifiedTime(cache.entryFor(second), FileTime.fromMillis(System.currentTimeMillis() - 30_000));
+        cache.load(first);
+        cache.load(third);
+
+        Assertions.assertTrue(cache.sizeOnDisk() <= 2 * entrySize + entrySize / 2);
+        Assertions.assertTrue(Files.exists(cache.entryFor(first)));
+        Assertions.assertFalse(Files.exists(cache.entryFor(second)));
+        Assertions.assertTrue(Files.exists(cache.entryFor(third)));
+    }
+
+    Path copyBooks(String name) throws IOException {
+        Path source = Path.of(this.getClass().getResource("/Books.txt").getPath());
+        return Files.copy(source, workDir.resolve(name));
+    }
+
+    static List<String> describe(List<Book> books) {
+        return books.stream().map(Book::toString).collect(Collectors.toList());
+    }
+
+    //Keeps parsed catalogs as binary snapshots tagged with a fingerprint of their source
+    //(path, size, mtime and SHA-256 of the content). A snapshot is only served when the fingerprint
+    //still matches, is replaced atomically, and the least recently used ones are evicted over maxBytes.
+    //The content is only hashed once size and mtime match, and a miss hashes it in the same pass as the parse.
+    //A CRC32 trailer over the whole snapshot is checked before any of its records are used.
+    static class BookSnapshotCache {
+        private static final int MAGIC = 0x424B5332;
+        private static final int RECORD_BYTES = 3 * Integer.BYTES + Double.BYTES;
+        private static final String SUFFIX = ".snapshot";
+        private static final int MAX_STRING_BYTES = 1 << 16;
+        private final Path directory;
+        private final long maxBytes;
+        private int hits;
+        private int misses;
+
+        BookSnapshotCache(Path directory, long maxBytes) {
+            this.directory = directory;
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized List<Book> load(Path source) throws IOException {
+            Fingerprint stat = Fingerprint.stat(source);
+            Path entry = entryFor(source);
+            List<Book> cached = read(entry, stat, source);
+            if (cached != null) {
+                hits++;
+                Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+                return cached;
+            }
+            misses++;
+            MessageDigest content = sha256();
+            List<Book> parsed = parse(source, content);
+            //the source may have changed while it was parsed, then the snapshot would not match its fingerprint
+            if (stat.sameFile(Fingerprint.stat(source))) {
+                write(entry, stat.withContentHash(content.digest()), parsed);
+                evict();
+            }
+            return parsed;
+        }
+
+        int hits() {
+            return hits;
+        }
+
+        int misses() {
+            return misses;
+        }
+
+        Path entryFor(Path source) {
+            String key = source.toAbsolutePath().normalize().toString();
+            return directory.resolve(hex(sha256(key.getBytes(StandardCharsets.UTF_8))) + SUFFIX);
+        }
+
+        long sizeOnDisk() throws IOException {
+            long total = 0;
+            for (Path snapshot : snapshots()) {
+                total += Files.size(snapshot);
+            }
+            return total;
+        }
+
+        private static List<Book> parse(Path source, MessageDigest content) throws IOException {
+            try (DigestInputStream in = new DigestInputStream(Files.newInputStream(source), content);
+                 BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                List<Book> books = StreamSupport.stream(new BookSpliterator(reader.lines().spliterator()), false)
+                        .collect(Collectors.toList());
+                in.transferTo(OutputStream.nullOutputStream());
+                return books;
+            }
+        }
+
+        private static byte[] contentHash(Path source) throws IOException {
+            MessageDigest content = sha256();
+            try (DigestInputStream in = new DigestInputStream(Files.newInputStream(source), content)) {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+            return content.digest();
+        }
+
+        private List<Book> read(Path entry, Fingerprint stat, Path source) throws IOException {
+            if (!Files.exists(entry)) {
+                return null;
+            }
+            try {
+                //read onto the heap rather than mapped, a live mapping keeps the file from being
+                //deleted or replaced on Windows
+                ByteBuffer snapshot;
+                try (FileChannel channel = FileChannel.open(entry, StandardOpenOption.READ)) {
+                    long size = channel.size();
+                    if (size < Integer.BYTES + Long.BYTES || size > Integer.MAX_VALUE - 8) {
+                        throw new StreamCorruptedException("invalid snapshot size " + size);
+                    }
+                    snapshot = ByteBuffer.allocate((int) size);
+                    while (snapshot.hasRemaining()) {
+                        if (channel.read(snapshot) < 0) {
+                            throw new StreamCorruptedException("snapshot shrank while it was read");
+                        }
+                    }
+                    snapshot.flip();
+                }
+                if (snapshot.getInt() != MAGIC) {
+                    return null;
+                }
+                Fingerprint stored = Fingerprint.read(snapshot);
+                if (!stat.sameFile(stored)) {
+                    return null;
+                }
+                //nothing past the header is trusted before the trailer confirms it
+                int payloadEnd = snapshot.limit() - Long.BYTES;
+                CRC32 crc = new CRC32();
+                crc.update(snapshot.duplicate().position(0).limit(payloadEnd));
+                if (crc.getValue() != snapshot.getLong(payloadEnd)) {
+                    throw new StreamCorruptedException("snapshot checksum mismatch");
+                }
+                if (!Arrays.equals(stored.contentHash, contentHash(source))) {
+                    return null;
+                }
+                return readBooks(snapshot.limit(payloadEnd));
+            } catch (StreamCorruptedException | BufferUnderflowException | IllegalArgumentException e) {
+                Files.deleteIfExists(entry);
+                return null;
+            }
+        }
+
+        //Strings are stored once in a table and referenced by index, every record takes RECORD_BYTES
+        private static List<Book> readBooks(ByteBuffer snapshot) throws StreamCorruptedException {
+            int stringCount = snapshot.getInt();
+            checkCount(stringCount, snapshot.remaining() / Integer.BYTES);
+            String[] strings = new String[stringCount];
+            for (int i = 0; i < stringCount; i++) {
+                strings[i] = readString(snapshot);
+            }
+            int count = snapshot.getInt();
+            checkCount(count, snapshot.remaining() / RECORD_BYTES);
+            List<Book> books = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String name = strings[checkIndex(snapshot.getInt(), stringCount)];
+                String author = strings[checkIndex(snapshot.getInt(), stringCount)];
+                String genre = strings[checkIndex(snapshot.getInt(), stringCount)];
+                books.add(new Book(author, genre, name, snapshot.getDouble()));
+            }
+            return books;
+        }
+
+        private void write(Path entry, Fingerprint fingerprint, List<Book> books) throws IOException {
+            Map<String, Integer> strings = new LinkedHashMap<>();
+            for (Book book : books) {
+                strings.putIfAbsent(book.getName(), strings.size());
+                strings.putIfAbsent(book.getAuthor(), strings.size());
+                strings.putIfAbsent(book.getGenre(), strings.size());
+            }
+            //a snapshot with strings readString would refuse is never written, the catalog is just parsed each time
+            for (String value : strings.keySet()) {
+                if (utf8Length(value) > MAX_STRING_BYTES) {
+                    Files.deleteIfExists(entry);
+                    return;
+                }
+            }
+            Files.createDirectories(directory);
+            Path temp = Files.createTempFile(directory, entry.getFileName().toString(), ".tmp");
+            try {
+                CRC32 crc = new CRC32();
+                try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16), crc))) {
+                    out.writeInt(MAGIC);
+                    fingerprint.write(out);
+                    out.writeInt(strings.size());
+                    for (String value : strings.keySet()) {
+                        writeString(out, value);
+                    }
+                    out.writeInt(books.size());
+                    for (Book book : books) {
+                        out.writeInt(strings.get(book.getName()));
+                        out.writeInt(strings.get(book.getAuthor()));
+                        out.writeInt(strings.get(book.getGenre()));
+                        out.writeDouble(book.getScore());
+                    }
+                    out.writeLong(crc.getValue());
+                }
+                try {
+                    Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+
+        private void evict() throws IOException {
+            List<Path> snapshots = snapshots();
+            Map<Path, FileTime> lastUsed = new HashMap<>();
+            long total = 0;
+            for (Path snapshot : snapshots) {
+                lastUsed.put(snapshot, Files.getLastModifiedTime(snapshot));
+                total += Files.size(snapshot);
+            }
+            snapshots.sort(Comparator.comparing(lastUsed::get));
+            for (Iterator<Path> oldest = snapshots.iterator(); total > maxBytes && oldest.hasNext(); ) {
+                Path snapshot = oldest.next();
+                long size = Files.size(snapshot);
+                if (Files.deleteIfExists(snapshot)) {
+                    total -= size;
+                }
+            }
+        }
+
+        private List<Path> snapshots() throws IOException {
+            if (!Files.isDirectory(directory)) {
+                return new ArrayList<>();
+            }
+            try (Stream<Path> files = Files.list(directory)) {
+                return files.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).collect(Collectors.toList());
+            }
+        }
+
+        static void writeString(DataOutputStream out, String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        static int utf8Length(String value) {
+            return value.length() * 3 <= MAX_STRING_BYTES ? value.length() : value.getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        static String readString(ByteBuffer in) throws StreamCorruptedException {
+            int length = in.getInt();
+            if (length < 0 || length > MAX_STRING_BYTES || length > in.remaining()) {
+                throw new StreamCorruptedException("invalid string length " + length);
+            }
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private static void checkCount(int count, int fits) throws StreamCorruptedException {
+            if (count < 0 || count > fits) {
+                throw new StreamCorruptedException("record count " + count + " does not fit the snapshot");
+            }
+        }
+
+        private static int checkIndex(int index, int size) throws StreamCorruptedException {
+            if (index < 0 || index >= size) {
+                throw new StreamCorruptedException("string index " + index + " out of range");
+            }
+            return index;
+        }
+    }
+
+    static class Fingerprint {
+        private final String path;
+        private final long size;
+        private final long modified;
+        private final byte[] contentHash;
+
+        Fingerprint(String path, long size, long modified, byte[] contentHash) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.contentHash = contentHash;
+        }
+
+        //Path, size and mtime only, the content hash is added once it has been computed
+        static Fingerprint stat(Path source) throws IOException {
+            return new Fingerprint(
+                    source.toAbsolutePath().normalize().toString(),
+                    Files.size(source),
+                    Files.getLastModifiedTime(source).toMillis(),
+                    null);
+        }
+
+        Fingerprint withContentHash(byte[] contentHash) {
+            return new Fingerprint(path, size, modified, contentHash);
+        }
+
+        boolean sameFile(Fingerprint other) {
+            return size == other.size && modified == other.modified && path.equals(other.path);
+        }
+
+        static Fingerprint read(ByteBuffer in) throws StreamCorruptedException {
+            String path = BookSnapshotCache.readString(in);
+            long size = in.getLong();
+            long modified = in.getLong();
+            byte[] contentHash = new byte[32];
+            in.get(contentHash);
+            return new Fingerprint(path, size, modified, contentHash);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            BookSnapshotCache.writeString(out, path);
+            out.writeLong(size);
+            out.writeLong(modified);
+            out.write(contentHash);
+        }
+    }
+
+    static byte[] sha256(byte[] bytes) {
+        return sha256().digest(bytes);
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
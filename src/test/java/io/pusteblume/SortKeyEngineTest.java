@@ -0,0 +1,254 @@
+package io.pusteblume;
+
+import io.pusteblume.StreamsTest.Book;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+
+public class SortKeyEngineTest {
+
+    //-Dsortkeys.benchmark.size=10000000 for the full comparison, the default keeps the build fast
+    private static final int BENCHMARK_SIZE = Integer.getInteger("sortkeys.benchmark.size", 200_000);
+
+    private static final Comparator<Book> GENRE_AUTHOR_SCORE_DESC = Comparator
+            .comparing(Book::getGenre)
+            .thenComparing(Book::getAuthor)
+            .thenComparing(Book::getScore, Comparator.reverseOrder());
+
+    private static final SortKeyEngine<Book> GENRE_AUTHOR_SCORE_DESC_KEYS = SortKeyEngine
+            .byString(Book::getGenre)
+            .thenString(Book::getAuthor)
+            .thenDoubleDescending(Book::getScore);
+
+    @Test
+    public void matchesChainedComparatorIncludingTies() {
+        List<Book> books = generate(5_000, new Random(7));
+
+        List<Book> expected = new ArrayList<>(books);
+        expected.sort(GENRE_AUTHOR_SCORE_DESC);
+        List<Book> sorted = GENRE_AUTHOR_SCORE_DESC_KEYS.sort(books);
+
+        Assertions.assertEquals(expected.size(), sorted.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assertions.assertSame(expected.get(i), sorted.get(i));
+        }
+    }
+
+    @Test
+    public void singleDescendingStringKey() {
+        List<Book> books = List.of(
+                new Book("b", "g", "n1", 1.0),
+                new Book("a", "g", "n2", 2.0),
+                new Book("c", "g", "n3", 3.0),
+                new Book("a", "g", "n4", 4.0));
+
+        List<Book> sorted = SortKeyEngine.byStringDescending(Book::getAuthor).sort(books);
+
+        Assertions.assertEquals(List.of("n3", "n1", "n2", "n4"), names(sorted));
+    }
+
+    @Test
+    public void benchmarkAgainstChainedComparator() {
+        List<Book> books = generate(BENCHMARK_SIZE, new Random(42));
+
+        long start = System.nanoTime();
+        List<Book> byComparator = new ArrayList<>(books);
+        byComparator.sort(GENRE_AUTHOR_SCORE_DESC);
+        long comparatorMillis = (System.nanoTime() - start) / 1_000_000;
+
+        start = System.nanoTime();
+        List<Book> byKeys = GENRE_AUTHOR_SCORE_DESC_KEYS.sort(books);
+        long keysMillis = (System.nanoTime() - start) / 1_000_000;
+
+        System.out.println(books.size() + " books: chained comparator " + comparatorMillis
+                + "ms, precomputed sort keys " + keysMillis + "ms");
+        Assertions.assertEquals(names(byComparator), names(byKeys));
+    }
+
+    static List<Book> generate(int count, Random random) {
+        List<Book> books = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            books.add(new Book(
+                    "author " + random.nextInt(5_000),
+                    "genre " + random.nextInt(20),
+                    "book " + i,
+                    random.nextInt(51) / 10.0));
+        }
+        return books;
+    }
+
+    static List<String> names(List<Book> books) {
+        List<String> names = new ArrayList<>(books.size());
+        books.forEach(b -> names.add(b.getName()));
+        return names;
+    }
+
+    //Sorts by several fields without running comparators per comparison. Every field is dictionary
+    //encoded into its rank among the distinct values, so the string and double comparisons only happen
+    //while ranking those distinct values. The ranks are then packed together with the record position into
+    //primitive long keys, sorted with Arrays.parallelSort and the records are reordered once at the end.
+    //Fields that do not fit into one long are sorted in several stable passes, least significant first.
+    static class SortKeyEngine<T> {
+        private final List<Column<T>> columns;
+
+        private SortKeyEngine(List<Column<T>> columns) {
+            this.columns = columns;
+        }
+
+        static <T> SortKeyEngine<T> byString(Function<? super T, String> key) {
+            return new SortKeyEngine<T>(List.of()).then(stringColumn(key, false));
+        }
+
+        static <T> SortKeyEngine<T> byStringDescending(Function<? super T, String> key) {
+            return new SortKeyEngine<T>(List.of()).then(stringColumn(key, true));
+        }
+
+        static <T> SortKeyEngine<T> byDouble(ToDoubleFunction<? super T> key) {
+            return new SortKeyEngine<T>(List.of()).then(doubleColumn(key, false));
+        }
+
+        static <T> SortKeyEngine<T> byDoubleDescending(ToDoubleFunction<? super T> key) {
+            return new SortKeyEngine<T>(List.of()).then(doubleColumn(key, true));
+        }
+
+        SortKeyEngine<T> thenString(Function<? super T, String> key) {
+            return then(stringColumn(key, false));
+        }
+
+        SortKeyEngine<T> thenStringDescending(Function<? super T, String> key) {
+            return then(stringColumn(key, true));
+        }
+
+        SortKeyEngine<T> thenDouble(ToDoubleFunction<? super T> key) {
+            return then(doubleColumn(key, false));
+        }
+
+        SortKeyEngine<T> thenDoubleDescending(ToDoubleFunction<? super T> key) {
+            return then(doubleColumn(key, true));
+        }
+
+        private SortKeyEngine<T> then(Column<T> column) {
+            List<Column<T>> extended = new ArrayList<>(columns);
+            extended.add(column);
+            return new SortKeyEngine<>(Collections.unmodifiableList(extended));
+        }
+
+        List<T> sort(List<T> items) {
+            int[] order = order(items);
+            List<T> sorted = new ArrayList<>(order.length);
+            for (int index : order) {
+                sorted.add(items.get(index));
+            }
+            return sorted;
+        }
+
+        //Positions of the items in sorted order, equal items keep their original order
+        int[] order(List<T> items) {
+            int n = items.size();
+            int[][] ranks = new int[columns.size()][];
+            int[] widths = new int[columns.size()];
+            for (int c = 0; c < columns.size(); c++) {
+                ranks[c] = columns.get(c).ranks(items);
+                widths[c] = bitsFor(max(ranks[c]));
+            }
+            int positionBits = bitsFor(n - 1);
+
+            int[] order = new int[n];
+            Arrays.setAll(order, i -> i);
+            int last = columns.size();
+            while (last > 0) {
+                int first = last - 1;
+                int keyBits = widths[first];
+                while (first > 0 && keyBits + widths[first - 1] + positionBits <= 63) {
+                    keyBits += widths[--first];
+                }
+                order = sortPass(order, ranks, widths, first, last, positionBits);
+                last = first;
+            }
+            return order;
+        }
+
+        private static int[] sortPass(int[] order, int[][] ranks, int[] widths, int first, int last, int positionBits) {
+            long[] keys = new long[order.length];
+            for (int position = 0; position < order.length; position++) {
+                int item = order[position];
+                long key = 0;
+                for (int c = first; c < last; c++) {
+                    key = (key << widths[c]) | ranks[c][item];
+                }
+                keys[position] = (key << positionBits) | position;
+            }
+            Arrays.parallelSort(keys);
+            long positionMask = (1L << positionBits) - 1;
+            int[] sorted = new int[order.length];
+            for (int i = 0; i < keys.length; i++) {
+                sorted[i] = order[(int) (keys[i] & positionMask)];
+            }
+            return sorted;
+        }
+
+        private static int max(int[] values) {
+            int max = 0;
+            for (int value : values) {
+                max = Math.max(max, value);
+            }
+            return max;
+        }
+
+        private static int bitsFor(int maxValue) {
+            return Math.max(1, 32 - Integer.numberOfLeadingZeros(maxValue));
+        }
+
+        private static <T> Column<T> stringColumn(Function<? super T, String> key, boolean descending) {
+            return items -> {
+                String[] values = new String[items.size()];
+                Map<String, Integer> distinct = new HashMap<>();
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = Objects.requireNonNull(key.apply(items.get(i)));
+                    distinct.putIfAbsent(values[i], 0);
+                }
+                String[] dictionary = distinct.keySet().toArray(new String[0]);
+                Arrays.parallelSort(dictionary);
+                for (int rank = 0; rank < dictionary.length; rank++) {
+                    distinct.put(dictionary[rank], descending ? dictionary.length - 1 - rank : rank);
+                }
+                int[] ranks = new int[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    ranks[i] = distinct.get(values[i]);
+                }
+                return ranks;
+            };
+        }
+
+        private static <T> Column<T> doubleColumn(ToDoubleFunction<? super T> key, boolean descending) {
+            return items -> {
+                double[] values = new double[items.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = key.applyAsDouble(items.get(i));
+                }
+                double[] dictionary = values.clone();
+                Arrays.parallelSort(dictionary);
+                int distinct = 0;
+                for (int i = 0; i < dictionary.length; i++) {
+                    if (distinct == 0 || Double.compare(dictionary[distinct - 1], dictionary[i]) != 0) {
+                        dictionary[distinct++] = dictionary[i];
+                    }
+                }
+                int[] ranks = new int[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    int rank = Arrays.binarySearch(dictionary, 0, distinct, values[i]);
+                    ranks[i] = descending ? distinct - 1 - rank : rank;
+                }
+                return ranks;
+            };
+        }
+
+        @FunctionalInterface
+        interface Column<T> {
+            int[] ranks(List<T> items);
+        }
+    }
+}
@@ -225,6 +225,22 @@ public class StreamsTest {
             this.score = score;
         }
 
+        public Double getScore() {
+            return score;
+        }
+
+        public String getAuthor() {
+            return author;
+        }
+
+        public String getGenre() {
+            return genre;
+        }
+
+        public String getName() {
+            return name;
+        }
+
         @Override
         public String toString() {
             return "Book{" +